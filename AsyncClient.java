@@ -0,0 +1,455 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client non bloquant du protocole à trames, utilisable comme bibliothèque.
+ * Toutes les opérations partagent une seule connexion et retournent immédiatement
+ * un CompletableFuture ; les requêtes sont envoyées sans attendre les réponses.
+ *
+ * <pre>
+ * try (AsyncClient client = AsyncClient.connect("localhost", 5000).join()) {
+ *     client.upload("a.txt", Paths.get("a.txt")).thenCompose(v -> client.list()).join();
+ * }
+ * </pre>
+ */
+public class AsyncClient implements Closeable {
+    private final AsynchronousSocketChannel channel;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Map<Integer, ResponseHandler> pending = new ConcurrentHashMap<>();
+    private final Deque<PendingWrite> writes = new ArrayDeque<>();
+    private boolean writing;
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(FrameProtocol.DATA_CHUNK_SIZE * 2);
+    private volatile IOException closedCause;
+
+    private AsyncClient(AsynchronousSocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public static CompletableFuture<AsyncClient> connect(String host, int port) {
+        CompletableFuture<AsyncClient> result = new CompletableFuture<>();
+        try {
+            AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+            AsyncClient client = new AsyncClient(channel);
+            channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void ignored, Void attachment) {
+                    client.send(ByteBuffer.wrap(FrameProtocol.handshake()))
+                            .thenCompose(v -> client.readHandshake())
+                            .whenComplete((v, e) -> {
+                                if (e != null) {
+                                    client.close();
+                                    result.completeExceptionally(e);
+                                } else {
+                                    client.readFrames();
+                                    result.complete(client);
+                                }
+                            });
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    client.close();
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public CompletableFuture<Void> ping() {
+        return simpleRequest(FrameProtocol.PING, new byte[0]);
+    }
+
+    public CompletableFuture<List<String>> list() {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        int requestId = register(result, (type, payload) -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int count = in.readInt();
+            List<String> fileNames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                fileNames.add(FrameProtocol.readString(in));
+            }
+            result.complete(fileNames);
+            return true;
+        });
+        sendRequest(requestId, FrameProtocol.LIST, new byte[0], result);
+        return result;
+    }
+
+    public CompletableFuture<Void> remove(String fileName) {
+        return simpleRequest(FrameProtocol.REMOVE, encode(out -> FrameProtocol.writeString(out, fileName)));
+    }
+
+    /**
+     * Envoie le fichier par trames DATA ; la trame suivante n'est lue qu'une fois la
+     * précédente partie sur le réseau, afin de ne pas charger le fichier en mémoire.
+     * Annuler ou compléter le future arrête l'envoi : le serveur reçoit CANCEL et la
+     * connexion reste utilisable pour les autres requêtes.
+     */
+    public CompletableFuture<Void> upload(String fileName, Path source) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        FileChannel file;
+        long fileSize;
+        try {
+            file = FileChannel.open(source, StandardOpenOption.READ);
+            fileSize = file.size();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        int requestId = register(result, (type, payload) -> {
+            result.complete(null);
+            return true;
+        });
+        byte[] header = encode(out -> {
+            FrameProtocol.writeString(out, fileName);
+            out.writeLong(fileSize);
+        });
+        sendRequest(requestId, FrameProtocol.UPLOAD, header, result);
+        sendChunks(requestId, file, fileSize, result);
+        return result;
+    }
+
+    /**
+     * Télécharge le fichier dans target et retourne sa taille.
+     */
+    public CompletableFuture<Long> download(String fileName, Path target) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        FileChannel file;
+        try {
+            file = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.whenComplete((size, e) -> {
+            closeQuietly(file);
+            if (e != null) {
+                try {
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+
+        ByteBuffer sizeHeader = ByteBuffer.allocate(8);
+        int requestId = register(result, (type, payload) -> {
+            if (type == FrameProtocol.END) {
+                sizeHeader.flip();
+                result.complete(sizeHeader.getLong());
+                return true;
+            }
+            ByteBuffer data = ByteBuffer.wrap(payload);
+            // Les 8 premiers octets du flux portent la taille du fichier
+            while (sizeHeader.hasRemaining() && data.hasRemaining()) {
+                sizeHeader.put(data.get());
+            }
+            while (data.hasRemaining()) {
+                file.write(data);
+            }
+            return false;
+        });
+        sendRequest(requestId, FrameProtocol.DOWNLOAD,
+                encode(out -> FrameProtocol.writeString(out, fileName)), result);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connexion fermée"));
+        closeQuietly(channel);
+    }
+
+    private CompletableFuture<Void> simpleRequest(byte type, byte[] payload) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        int requestId = register(result, (responseType, response) -> {
+            result.complete(null);
+            return true;
+        });
+        sendRequest(requestId, type, payload, result);
+        return result;
+    }
+
+    private int register(CompletableFuture<?> result, FrameConsumer consumer) {
+        int requestId = nextRequestId.getAndIncrement();
+        pending.put(requestId, new ResponseHandler(result, consumer));
+        if (closedCause != null) {
+            pending.remove(requestId);
+            result.completeExceptionally(closedCause);
+        }
+        return requestId;
+    }
+
+    private void sendRequest(int requestId, byte type, byte[] payload, CompletableFuture<?> result) {
+        send(FrameProtocol.frame(requestId, type, payload, 0, payload.length)).whenComplete((v, e) -> {
+            if (e != null) {
+                pending.remove(requestId);
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Seul propriétaire du fichier pendant l'envoi : il le ferme dès qu'il s'arrête.
+     * Si l'envoi s'arrête avant la taille annoncée, CANCEL libère le serveur, qui
+     * attendrait sinon la suite des données.
+     */
+    private void sendChunks(int requestId, FileChannel file, long remaining, CompletableFuture<Void> result) {
+        if (remaining == 0) {
+            closeQuietly(file);
+            return;
+        }
+        if (result.isDone()) {
+            closeQuietly(file);
+            sendCancel(requestId);
+            return;
+        }
+
+        byte[] chunk = new byte[(int) Math.min(FrameProtocol.DATA_CHUNK_SIZE, remaining)];
+        int read;
+        try {
+            read = file.read(ByteBuffer.wrap(chunk));
+            if (read <= 0) {
+                throw new EOFException("Fichier raccourci pendant l'envoi");
+            }
+        } catch (IOException e) {
+            closeQuietly(file);
+            result.completeExceptionally(e);
+            sendCancel(requestId);
+            return;
+        }
+        send(FrameProtocol.frame(requestId, FrameProtocol.DATA, chunk, 0, read)).whenComplete((v, e) -> {
+            if (e != null) {
+                closeQuietly(file);
+                result.completeExceptionally(e);
+            } else {
+                sendChunks(requestId, file, remaining - read, result);
+            }
+        });
+    }
+
+    private void sendCancel(int requestId) {
+        send(FrameProtocol.frame(requestId, FrameProtocol.CANCEL));
+    }
+
+    private CompletableFuture<Void> send(ByteBuffer frame) {
+        PendingWrite write = new PendingWrite(frame);
+        synchronized (writes) {
+            writes.addLast(write);
+            if (!writing) {
+                writing = true;
+                writeNext();
+            }
+        }
+        return write.future;
+    }
+
+    private void writeNext() {
+        PendingWrite write;
+        synchronized (writes) {
+            write = writes.peekFirst();
+            if (write == null) {
+                writing = false;
+                return;
+            }
+        }
+        channel.write(write.buffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                if (write.buffer.hasRemaining()) {
+                    channel.write(write.buffer, null, this);
+                    return;
+                }
+                synchronized (writes) {
+                    writes.pollFirst();
+                }
+                write.future.complete(null);
+                writeNext();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                synchronized (writes) {
+                    for (PendingWrite pendingWrite : writes) {
+                        pendingWrite.future.completeExceptionally(e);
+                    }
+                    writes.clear();
+                    writing = false;
+                }
+                fail(e);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> readHandshake() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        ByteBuffer handshake = ByteBuffer.allocate(FrameProtocol.MAGIC.length + 1);
+        channel.read(handshake, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read == -1) {
+                    result.completeExceptionally(new EOFException("Connexion fermée pendant la poignée de main"));
+                } else if (handshake.hasRemaining()) {
+                    channel.read(handshake, null, this);
+                } else {
+                    int version = FrameProtocol.readVersion(handshake.array());
+                    if (version == FrameProtocol.VERSION) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(new IOException("Version de protocole non supportée : " + version));
+                    }
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void readFrames() {
+        channel.read(readBuffer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read == -1) {
+                    fail(new EOFException("Connexion fermée par le serveur"));
+                    return;
+                }
+                readBuffer.flip();
+                try {
+                    int needed = dispatchFrames();
+                    readBuffer.compact();
+                    if (needed > readBuffer.capacity()) {
+                        readBuffer.flip();
+                        readBuffer = ByteBuffer.allocateDirect(needed).put(readBuffer);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                readFrames();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Traite les trames complètes du tampon et retourne la taille de la trame incomplète.
+     */
+    private int dispatchFrames() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < FrameProtocol.HEADER_SIZE || length > FrameProtocol.MAX_FRAME_SIZE) {
+                throw new IOException("Trame invalide, longueur " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                return 4 + length;
+            }
+            readBuffer.getInt();
+            int requestId = readBuffer.getInt();
+            byte type = readBuffer.get();
+            byte[] payload = new byte[length - FrameProtocol.HEADER_SIZE];
+            readBuffer.get(payload);
+
+            ResponseHandler handler = pending.get(requestId);
+            if (handler != null) {
+                handler.handle(requestId, type, payload);
+            }
+        }
+        return 0;
+    }
+
+    private void fail(Throwable e) {
+        IOException cause = e instanceof IOException ? (IOException) e : new IOException(e);
+        if (closedCause == null) {
+            closedCause = cause;
+        }
+        for (Integer requestId : new ArrayList<>(pending.keySet())) {
+            ResponseHandler handler = pending.remove(requestId);
+            if (handler != null) {
+                handler.result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] encode(PayloadWriter writer) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(payload));
+            return payload.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reçoit les trames d'une requête autres que ERROR ; retourne true quand la réponse est complète.
+     */
+    private interface FrameConsumer {
+        boolean accept(byte type, byte[] payload) throws IOException;
+    }
+
+    private class ResponseHandler {
+        final CompletableFuture<?> result;
+        final FrameConsumer consumer;
+
+        ResponseHandler(CompletableFuture<?> result, FrameConsumer consumer) {
+            this.result = result;
+            this.consumer = consumer;
+        }
+
+        void handle(int requestId, byte type, byte[] payload) {
+            try {
+                if (type == FrameProtocol.ERROR) {
+                    String message = FrameProtocol.readString(new DataInputStream(new ByteArrayInputStream(payload)));
+                    pending.remove(requestId);
+                    result.completeExceptionally(new IOException(message));
+                } else if (consumer.accept(type, payload)) {
+                    pending.remove(requestId);
+                }
+            } catch (IOException | RuntimeException e) {
+                pending.remove(requestId);
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
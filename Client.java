@@ -77,8 +77,9 @@ public class Client {
             System.out.println("2. UPLOAD - Envoyer un fichier");
             System.out.println("3. DOWNLOAD - Télécharger un fichier");
             System.out.println("4. REMOVE - Supprimer un fichier");
-            System.out.println("5. Reconnecter à un autre serveur");
-            System.out.println("6. Quitter");
+            System.out.println("5. SYNC - Envoyer seulement les modifications d'un fichier");
+            System.out.println("6. Reconnecter à un autre serveur");
+            System.out.println("7. Quitter");
             System.out.print("Choisissez une option : ");
 
             int choice = scanner.nextInt();
@@ -105,11 +106,16 @@ public class Client {
                         removeFile(removeFileName);
                         break;
                     case 5:
+                        System.out.print("Entrez le chemin absolu du fichier à synchroniser : ");
+                        String syncPath = scanner.nextLine();
+                        syncFile(syncPath);
+                        break;
+                    case 6:
                         if (!promptServerConnection()) {
                             System.out.println("Retour au menu principal.");
                         }
                         break;
-                    case 6:
+                    case 7:
                         System.out.println("Au revoir !");
                         return;
                     default:
@@ -158,7 +164,43 @@ public class Client {
                     out.write(buffer, 0, bytesRead);
                 }
             }
-            System.out.println("Fichier uploadé avec succès : " + file.getName());
+
+            boolean success = in.readBoolean();
+            if (success) {
+                System.out.println("Fichier uploadé avec succès : " + file.getName());
+            } else {
+                System.err.println("Échec de l'upload du fichier : " + file.getName());
+            }
+        }
+    }
+
+    public void syncFile(String filePath) throws IOException {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            System.err.println("Le fichier n'existe pas : " + filePath);
+            return;
+        }
+
+        try (Socket socket = new Socket(serverAddress, port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeUTF("SYNC");
+            out.writeUTF(file.getName());
+            out.flush();
+
+            DeltaSync.Signatures signatures = DeltaSync.readSignatures(in);
+            out.writeLong(file.length());
+            long literalBytes = DeltaSync.encode(file, signatures, out);
+            out.flush();
+
+            boolean success = in.readBoolean();
+            if (success) {
+                System.out.println("Fichier synchronisé avec succès : " + file.getName()
+                        + " (" + literalBytes + " octets envoyés sur " + file.length() + ")");
+            } else {
+                System.err.println("Échec de la synchronisation du fichier : " + file.getName());
+            }
         }
     }
 
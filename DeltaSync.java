@@ -0,0 +1,276 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Synchronisation différentielle à la manière de rsync. Le serveur envoie la
+ * signature de chaque bloc de la version stockée (somme glissante faible et MD5),
+ * le client parcourt son fichier octet par octet et ne transmet que les données
+ * qui ne correspondent à aucun bloc connu.
+ *
+ * Instructions envoyées par le client : COPY suivi du numéro de bloc, DATA suivi
+ * d'une longueur et des octets, puis END. Les blocs sont numérotés partie après
+ * partie : chaque sous-serveur signe les blocs complets de sa propre partie.
+ */
+public class DeltaSync {
+    public static final byte COPY = 0;
+    public static final byte DATA = 1;
+    public static final byte END = 2;
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int STRONG_SIZE = 16;
+    /** Octets d'une signature de bloc : somme faible puis MD5. */
+    public static final int SIGNATURE_SIZE = 4 + STRONG_SIZE;
+
+    public static int blockSize(long fileSize) {
+        long size = Long.highestOneBit((long) Math.sqrt(fileSize));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * En-tête des signatures : taille de la version stockée, taille de bloc et nombre
+     * de blocs, suivi de count signatures (writeBlockSignatures).
+     */
+    public static void writeHeader(DataOutputStream out, long size, int blockSize, int count) throws IOException {
+        out.writeLong(size);
+        out.writeInt(blockSize);
+        out.writeInt(count);
+    }
+
+    /**
+     * Annonce un fichier absent : taille de -1 et aucun bloc, le client envoie tout.
+     */
+    public static void writeNoSignatures(DataOutputStream out) throws IOException {
+        writeHeader(out, -1, MIN_BLOCK_SIZE, 0);
+    }
+
+    /**
+     * Écrit la signature (somme faible et MD5) de chaque bloc complet du fichier.
+     * Retourne le nombre de blocs écrits, soit file.length() / blockSize.
+     */
+    public static int writeBlockSignatures(File file, int blockSize, DataOutputStream out) throws IOException {
+        int count = (int) (file.length() / blockSize);
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int i = 0; i < count; i++) {
+                input.readFully(block);
+                out.writeInt(weakChecksum(block, 0, blockSize));
+                out.write(md5.digest(block));
+            }
+        }
+        return count;
+    }
+
+    public static Signatures readSignatures(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        int count = in.readInt();
+
+        Signatures signatures = new Signatures(size, blockSize);
+        for (int i = 0; i < count; i++) {
+            int weak = in.readInt();
+            byte[] strong = new byte[STRONG_SIZE];
+            in.readFully(strong);
+            signatures.add(i, weak, strong);
+        }
+        return signatures;
+    }
+
+    /**
+     * Parcourt le fichier avec une fenêtre glissante et écrit les instructions sur out.
+     * Retourne le nombre d'octets envoyés en clair.
+     */
+    public static long encode(File file, Signatures signatures, DataOutputStream out) throws IOException {
+        int blockSize = signatures.blockSize;
+        int maxLiteral = 2 * blockSize;
+        MessageDigest md5 = md5();
+        long literalBytes = 0;
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[4 * blockSize];
+            int literalStart = 0;
+            int start = 0;
+            int end = 0;
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+
+            while (true) {
+                // Garder au moins un bloc et l'octet suivant dans le tampon
+                if (end - start <= blockSize && !eof) {
+                    System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                    start -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                    while (end < buffer.length) {
+                        int read = input.read(buffer, end, buffer.length - end);
+                        if (read == -1) {
+                            eof = true;
+                            break;
+                        }
+                        end += read;
+                    }
+                }
+
+                if (end - start < blockSize) {
+                    break;
+                }
+
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int value = buffer[start + i] & 0xff;
+                        a += value;
+                        b += (blockSize - i) * value;
+                    }
+                    rolling = true;
+                }
+
+                int match = signatures.find((a & 0xffff) | (b << 16), md5, buffer, start);
+                if (match >= 0) {
+                    literalBytes += writeLiteral(out, buffer, literalStart, start - literalStart);
+                    out.writeByte(COPY);
+                    out.writeInt(match);
+                    start += blockSize;
+                    literalStart = start;
+                    rolling = false;
+                    continue;
+                }
+
+                if (end - start == blockSize) {
+                    // Fin du fichier : aucune donnée pour faire glisser la fenêtre
+                    break;
+                }
+                int outgoing = buffer[start] & 0xff;
+                int incoming = buffer[start + blockSize] & 0xff;
+                a += incoming - outgoing;
+                b += a - blockSize * outgoing;
+                start++;
+
+                if (start - literalStart >= maxLiteral) {
+                    literalBytes += writeLiteral(out, buffer, literalStart, start - literalStart);
+                    literalStart = start;
+                }
+            }
+
+            literalBytes += writeLiteral(out, buffer, literalStart, end - literalStart);
+        }
+
+        out.writeByte(END);
+        return literalBytes;
+    }
+
+    /**
+     * Lit les instructions du client jusqu'à END et les transmet à sink dans l'ordre.
+     * blockCount est le nombre de blocs annoncés dans les signatures.
+     */
+    public static void decode(DataInputStream in, int blockSize, long blockCount,
+                              TransferScheduler.Throttle throttle, Sink sink) throws IOException {
+        byte[] buffer = new byte[4 * blockSize];
+        while (true) {
+            byte op = in.readByte();
+            if (op == END) {
+                return;
+            }
+            if (op == COPY) {
+                int index = in.readInt();
+                if (index < 0 || index >= blockCount) {
+                    throw new IOException("Bloc inconnu : " + index);
+                }
+                sink.copy(index);
+            } else if (op == DATA) {
+                int length = in.readInt();
+                if (length < 0 || length > buffer.length) {
+                    throw new IOException("Longueur de données invalide : " + length);
+                }
+                in.readFully(buffer, 0, length);
+                throttle.acquire(length);
+                sink.data(buffer, 0, length);
+            } else {
+                throw new IOException("Instruction inconnue : " + op);
+            }
+        }
+    }
+
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static long writeLiteral(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(DATA);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        }
+        return length;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Destination des instructions décodées : numéro de bloc de la version stockée
+     * à recopier, ou données reçues en clair.
+     */
+    public interface Sink {
+        void copy(long block) throws IOException;
+
+        void data(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Signatures de la version stockée, indexées par somme faible.
+     */
+    public static class Signatures {
+        private final long size;
+        private final int blockSize;
+        private final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        private final List<byte[]> strong = new ArrayList<>();
+
+        Signatures(long size, int blockSize) {
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        public long getSize() { return size; }
+        public int getBlockSize() { return blockSize; }
+        public int getBlockCount() { return strong.size(); }
+
+        void add(int index, int weak, byte[] digest) {
+            byWeak.computeIfAbsent(weak, k -> new ArrayList<>()).add(index);
+            strong.add(digest);
+        }
+
+        int find(int weak, MessageDigest md5, byte[] data, int offset) {
+            List<Integer> candidates = byWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            md5.update(data, offset, blockSize);
+            byte[] digest = md5.digest();
+            for (int index : candidates) {
+                if (Arrays.equals(digest, strong.get(index))) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+}
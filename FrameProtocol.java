@@ -0,0 +1,105 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocole binaire versionné entre les clients et le serveur principal.
+ *
+ * La connexion commence par "TFP" suivi de l'octet de version ; le serveur répond
+ * de la même façon avec sa propre version. Comme aucune opération historique
+ * (writeUTF) n'a une longueur commençant par ces octets, les deux protocoles
+ * partagent le même port.
+ *
+ * Chaque trame est : longueur (int, octets qui suivent), numéro de requête (int),
+ * type (octet), contenu. Les chaînes sont codées en UTF-8 précédées de leur longueur
+ * sur un int. Plusieurs requêtes peuvent être en cours sur la même connexion ; les
+ * réponses portent le numéro de la requête et peuvent arriver dans le désordre.
+ *
+ * PING, LIST, REMOVE (nom) : réponse OK (LIST : nombre de noms puis les noms).
+ * UPLOAD (nom, taille) : suivi de trames DATA portant le même numéro, réponse OK.
+ * CANCEL, avec le numéro d'un UPLOAD dont toutes les données ne sont pas encore
+ * parties, l'abandonne sans couper la connexion : réponse ERROR à l'UPLOAD.
+ * DOWNLOAD (nom) : trames DATA (taille sur 8 octets puis contenu), puis END.
+ * Toute requête peut recevoir ERROR avec un message, y compris un DOWNLOAD dont
+ * des trames DATA sont déjà parties : le client abandonne alors le fichier reçu.
+ */
+public class FrameProtocol {
+    public static final byte[] MAGIC = { 'T', 'F', 'P' };
+    public static final byte VERSION = 1;
+
+    public static final byte PING = 1;
+    public static final byte LIST = 2;
+    public static final byte UPLOAD = 3;
+    public static final byte DOWNLOAD = 4;
+    public static final byte REMOVE = 5;
+    public static final byte DATA = 6;
+    public static final byte CANCEL = 7;
+
+    public static final byte OK = 64;
+    public static final byte ERROR = 65;
+    public static final byte END = 66;
+
+    /** Numéro de requête et type, comptés dans la longueur de trame. */
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int DATA_CHUNK_SIZE = 256 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public static byte[] handshake() {
+        byte[] handshake = new byte[MAGIC.length + 1];
+        System.arraycopy(MAGIC, 0, handshake, 0, MAGIC.length);
+        handshake[MAGIC.length] = VERSION;
+        return handshake;
+    }
+
+    /**
+     * Retourne la version annoncée, ou -1 si les octets ne sont pas une poignée de main.
+     */
+    public static int readVersion(byte[] handshake) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (handshake[i] != MAGIC[i]) {
+                return -1;
+            }
+        }
+        return handshake[MAGIC.length];
+    }
+
+    public static void writeFrame(DataOutputStream out, int requestId, byte type, byte[] payload,
+                                  int offset, int length) throws IOException {
+        out.writeInt(HEADER_SIZE + length);
+        out.writeInt(requestId);
+        out.writeByte(type);
+        out.write(payload, offset, length);
+    }
+
+    public static ByteBuffer frame(int requestId, byte type, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + length);
+        frame.putInt(HEADER_SIZE + length);
+        frame.putInt(requestId);
+        frame.put(type);
+        frame.put(payload, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer frame(int requestId, byte type) {
+        return frame(requestId, type, EMPTY, 0, 0);
+    }
+
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Longueur de chaîne invalide : " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
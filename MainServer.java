@@ -1,16 +1,52 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MainServer {
     private int port;
     private List<SubServerInfo> subServers;
     private static final int CHUNK_SIZE = 1024 * 1024; 
+    private static final int ADMISSION_QUEUE_SIZE = 64;
+    private static final Pattern PART_NAME = Pattern.compile("^(.*)\\.part([0-9]+)$");
     private Properties config;
+    private FileCache fileCache;
+    private GarbageCollector garbageCollector;
+    private TransferScheduler transferScheduler;
+    private final ExecutorService requestPool;
+    private final int maxPendingRequests;
+    private final Map<String, FileLock> fileLocks = new HashMap<>();
 
     public MainServer() {
         this.subServers = new ArrayList<>();
         loadConfiguration();
+        this.transferScheduler = new TransferScheduler(config);
+        this.fileCache = new FileCache(
+                Long.parseLong(config.getProperty("cache.memory.max", String.valueOf(256L * 1024 * 1024))),
+                config.getProperty("cache.disk.directory", ""),
+                Long.parseLong(config.getProperty("cache.disk.max", String.valueOf(4L * 1024 * 1024 * 1024))));
+        this.garbageCollector = new GarbageCollector(
+                config.getProperty("gc.tombstone.file", "tombstones.txt"),
+                Integer.parseInt(config.getProperty("gc.interval", "5")),
+                Integer.parseInt(config.getProperty("gc.batch.size", "256")),
+                Integer.parseInt(config.getProperty("gc.sweep.every", "12")),
+                Long.parseLong(config.getProperty("gc.incomplete.grace", "3600")));
+
+        int requestThreads = Integer.parseInt(config.getProperty("framed.threads", "32"));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        this.requestPool = pool;
+        this.maxPendingRequests = Integer.parseInt(config.getProperty("framed.max.pending", "64"));
     }
 
     private void loadConfiguration() {
@@ -60,6 +96,7 @@ public class MainServer {
 
     public void start() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
+            garbageCollector.start();
             System.out.println("Serveur principal démarré sur le port " + port);
             System.out.println("En attente de connexions...");
 
@@ -86,9 +123,20 @@ public class MainServer {
         @Override
         public void run() {
             try {
-                in = new DataInputStream(clientSocket.getInputStream());
+                in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
                 out = new DataOutputStream(clientSocket.getOutputStream());
 
+                // Protocole à trames si la connexion commence par la poignée de main, sinon opcodes historiques
+                byte[] handshake = new byte[FrameProtocol.MAGIC.length + 1];
+                in.mark(handshake.length);
+                in.readFully(handshake);
+                int version = FrameProtocol.readVersion(handshake);
+                if (version != -1) {
+                    runFramed(version);
+                    return;
+                }
+                in.reset();
+
                 String operation = in.readUTF();
                 if ("PING".equals(operation)) {
                     System.out.println("Connexion testée réussie.");
@@ -108,6 +156,9 @@ public class MainServer {
                     case "REMOVE":
                         handleRemove();
                         break;
+                    case "SYNC":
+                        handleSync();
+                        break;
                     default:
                         System.err.println("Opération inconnue : " + operation);
                 }
@@ -128,6 +179,7 @@ public class MainServer {
             String fileName = in.readUTF();
             long fileSize = in.readLong();
 
+            TransferScheduler.Throttle throttle = transferScheduler.forClient(clientAddress(), fileSize);
             File tempFile = File.createTempFile("upload", ".tmp");
             try (FileOutputStream fos = new FileOutputStream(tempFile)) {
                 byte[] buffer = new byte[CHUNK_SIZE];
@@ -135,131 +187,404 @@ public class MainServer {
                 while (remaining > 0) {
                     int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
                     if (read == -1) break;
+                    throttle.acquire(read);
                     fos.write(buffer, 0, read);
                     remaining -= read;
                 }
             }
 
+            out.writeBoolean(storeFile(fileName, tempFile));
+        }
+
+        /**
+         * Distribue un fichier reçu sur les sous-serveurs puis supprime le fichier temporaire.
+         */
+        private boolean storeFile(String fileName, File tempFile) {
+            FileLock lock = lockFile(fileName);
             try {
+                garbageCollector.beginUpload(fileName);
+                fileCache.invalidate(fileName);
                 distributeFile(tempFile, fileName);
-                out.writeBoolean(true); 
+                fileCache.invalidate(fileName);
                 System.out.println("Fichier distribué avec succès : " + fileName);
+                return true;
             } catch (IOException e) {
-                out.writeBoolean(false); 
                 System.err.println("Erreur lors de la distribution du fichier : " + e.getMessage());
+                return false;
             } finally {
+                garbageCollector.endUpload(fileName);
+                unlockFile(fileName, lock);
                 tempFile.delete();
             }
         }
 
-        private void handleDownload() throws IOException {
+        /**
+         * Upload différentiel : chaque sous-serveur signe sa partie de la version stockée,
+         * puis les instructions du client sont transmises au fil de l'eau aux sous-serveurs,
+         * qui reconstruisent leur nouvelle partie en recopiant eux-mêmes les blocs inchangés.
+         */
+        private void handleSync() throws IOException {
             String fileName = in.readUTF();
-            
-            File tempFile = File.createTempFile("download", ".tmp");
-            boolean success = false;
-
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
 
-                for (int i = 0; i < subServers.size(); i++) {
-                    SubServerInfo subServer = subServers.get(i);
-                    try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
-                        DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
-                        DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
+            // Aucun autre UPLOAD ou SYNC du même fichier entre la lecture des signatures et le remplacement des parties
+            FileLock lock = lockFile(fileName);
+            PartRebuilder rebuilder = null;
+            try {
+                boolean removed = garbageCollector.isRemoved(fileName);
+                garbageCollector.beginUpload(fileName);
 
-                        subOut.writeUTF("DOWNLOAD");
-                        subOut.writeUTF(fileName + ".part" + (i + 1));
+                DataOutputStream signatureOut = new DataOutputStream(new BufferedOutputStream(out));
+                long[] partLengths = null;
+                if (removed) {
+                    DeltaSync.writeNoSignatures(signatureOut);
+                } else {
+                    partLengths = sendPartSignatures(fileName, signatureOut);
+                }
+                signatureOut.flush();
 
-                        long chunkSize = subIn.readLong();
-                        if (chunkSize == -1) {
-                            out.writeLong(-1);
-                            return;
-                        }
+                DataInputStream deltaIn = new DataInputStream(new BufferedInputStream(in));
+                long fileSize = deltaIn.readLong();
+                rebuilder = new PartRebuilder(fileName, partLengths, fileSize);
+                TransferScheduler.Throttle throttle = transferScheduler.forClient(clientAddress(), fileSize);
+                DeltaSync.decode(deltaIn, rebuilder.blockSize, rebuilder.blockCount, throttle, rebuilder);
+                rebuilder.finish();
 
-                        byte[] buffer = new byte[CHUNK_SIZE];
-                        long remaining = chunkSize;
-                        while (remaining > 0) {
-                            int read = subIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-                            if (read == -1) break;
-                            fos.write(buffer, 0, read);
-                            remaining -= read;
-                        }
-                    }
-                }
-                success = true;
+                fileCache.invalidate(fileName);
+                rebuilder.commit();
+                fileCache.invalidate(fileName);
+                out.writeBoolean(true);
+                System.out.println("Fichier synchronisé avec succès : " + fileName + " ("
+                        + rebuilder.copied + " octets recopiés, " + rebuilder.moved + " déplacés, "
+                        + rebuilder.received + " reçus)");
             } catch (IOException e) {
-                System.err.println("Erreur lors de la reconstruction du fichier : " + e.getMessage());
-                out.writeLong(-1);
-                return;
+                out.writeBoolean(false);
+                System.err.println("Erreur lors de la synchronisation du fichier : " + e.getMessage());
+            } finally {
+                if (rebuilder != null) {
+                    rebuilder.close();
+                }
+                garbageCollector.endUpload(fileName);
+                unlockFile(fileName, lock);
             }
+        }
 
-            if (success) {
-                out.writeLong(tempFile.length());
-                try (FileInputStream fis = new FileInputStream(tempFile)) {
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        out.write(buffer, 0, bytesRead);
-                    }
-                }
+        private void handleDownload() throws IOException {
+            String fileName = in.readUTF();
+
+            if (!garbageCollector.isRemoved(fileName) && fileCache.serve(fileName, out, clientAddress())) {
                 System.out.println("Fichier envoyé avec succès : " + fileName);
+            } else {
+                out.writeLong(-1);
             }
+        }
 
-            tempFile.delete();
+        private String clientAddress() {
+            return clientSocket.getInetAddress().getHostAddress();
         }
 
         private void handleList() throws IOException {
+            Set<String> uniqueFiles = collectFileNames();
+
+            out.writeInt(uniqueFiles.size());
+            for (String fileName : uniqueFiles) {
+                out.writeUTF(fileName);
+            }
+        }
+
+        private Set<String> collectFileNames() {
             Set<String> uniqueFiles = new HashSet<>();
             
             for (SubServerInfo subServer : subServers) {
-                try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
-                    DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
-                    DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
-
-                    subOut.writeUTF("LIST");
-                    int fileCount = subIn.readInt();
-
-                    for (int i = 0; i < fileCount; i++) {
-                        String fileName = subIn.readUTF();
+                try {
+                    for (String fileName : listSubServer(subServer)) {
                         fileName = fileName.replaceAll("\\.part[0-9]+$", "");
-                        uniqueFiles.add(fileName);
+                        if (!garbageCollector.isRemoved(fileName)) {
+                            uniqueFiles.add(fileName);
+                        }
                     }
                 } catch (IOException e) {
                     System.err.println("Erreur lors de la lecture des fichiers du sous-serveur : " + e.getMessage());
                 }
             }
-
-            out.writeInt(uniqueFiles.size());
-            for (String fileName : uniqueFiles) {
-                out.writeUTF(fileName);
-            }
+            return uniqueFiles;
         }
 
         private void handleRemove() throws IOException {
             String fileName = in.readUTF();
-            boolean overallSuccess = true;
+            markRemoved(fileName);
+            out.writeBoolean(true);
+        }
 
-            for (int i = 0; i < subServers.size(); i++) {
-                SubServerInfo subServer = subServers.get(i);
-                try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
-                    DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
-                    DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
+        private void markRemoved(String fileName) {
+            fileCache.invalidate(fileName);
+            garbageCollector.remove(fileName);
+            System.out.println("Fichier marqué pour suppression : " + fileName);
+        }
 
-                    subOut.writeUTF("REMOVE");
-                    subOut.writeUTF(fileName + ".part" + (i + 1));
+        /**
+         * Session à trames : lit les requêtes en continu et traite LIST, DOWNLOAD, REMOVE
+         * et la fin des UPLOAD en parallèle sur requestPool (framed.threads fils partagés
+         * par toutes les sessions), si bien que le client peut en enchaîner plusieurs sans
+         * attendre les réponses. Au plus framed.max.pending requêtes par session sont en
+         * cours à la fois. Les opérations sur un même nom restent dans leur ordre
+         * d'arrivée. Voir FrameProtocol pour le format.
+         */
+        private void runFramed(int version) throws IOException {
+            DataOutputStream frameOut = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            frameOut.write(FrameProtocol.handshake());
+            frameOut.flush();
+            if (version != FrameProtocol.VERSION) {
+                System.err.println("Version de protocole non supportée : " + version);
+                return;
+            }
 
-                    boolean success = subIn.readBoolean();
-                    overallSuccess &= success;
-                } catch (IOException e) {
-                    System.err.println("Erreur lors de la suppression sur un sous-serveur : " + e.getMessage());
-                    overallSuccess = false;
+            Map<Integer, PendingUpload> uploads = new HashMap<>();
+            Map<String, CompletableFuture<Void>> queues = new ConcurrentHashMap<>();
+            Semaphore slots = new Semaphore(maxPendingRequests);
+            Map<String, Integer> receiving = new HashMap<>();
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    if (length < FrameProtocol.HEADER_SIZE || length > FrameProtocol.MAX_FRAME_SIZE) {
+                        throw new IOException("Trame invalide, longueur " + length);
+                    }
+                    int requestId = in.readInt();
+                    byte type = in.readByte();
+                    byte[] payload = new byte[length - FrameProtocol.HEADER_SIZE];
+                    in.readFully(payload);
+                    DataInputStream request = new DataInputStream(new ByteArrayInputStream(payload));
+
+                    switch (type) {
+                        case FrameProtocol.PING:
+                            reply(frameOut, requestId, FrameProtocol.OK, new byte[0]);
+                            break;
+                        case FrameProtocol.LIST: {
+                            boolean held = acquireSlot(slots, receiving, null);
+                            requestPool.execute(releasing(slots, held, () -> framedList(frameOut, requestId)));
+                            break;
+                        }
+                        case FrameProtocol.REMOVE: {
+                            String fileName = FrameProtocol.readString(request);
+                            boolean held = acquireSlot(slots, receiving, fileName);
+                            inOrder(queues, fileName, null,
+                                    releasing(slots, held, () -> framedRemove(frameOut, requestId, fileName)));
+                            break;
+                        }
+                        case FrameProtocol.DOWNLOAD: {
+                            String fileName = FrameProtocol.readString(request);
+                            boolean held = acquireSlot(slots, receiving, fileName);
+                            inOrder(queues, fileName, null,
+                                    releasing(slots, held, () -> framedDownload(frameOut, requestId, fileName)));
+                            break;
+                        }
+                        case FrameProtocol.UPLOAD: {
+                            String fileName = FrameProtocol.readString(request);
+                            long fileSize = request.readLong();
+                            PendingUpload upload = new PendingUpload(fileName, fileSize,
+                                    transferScheduler.forClient(clientAddress(), fileSize));
+                            uploads.put(requestId, upload);
+                            receiving.merge(fileName, 1, Integer::sum);
+                            // Place réservée dès l'annonce : un REMOVE arrivé pendant les DATA attend le stockage
+                            inOrder(queues, fileName, upload.ready, () -> {
+                                try {
+                                    framedStore(frameOut, requestId, upload);
+                                } finally {
+                                    if (upload.holdsSlot) {
+                                        slots.release();
+                                    }
+                                }
+                            });
+                            if (upload.isComplete()) {
+                                completeUpload(uploads.remove(requestId), slots, receiving);
+                            }
+                            break;
+                        }
+                        case FrameProtocol.CANCEL: {
+                            // Sans upload en cours, il était déjà complet : CANCEL arrive trop tard et n'a pas d'effet
+                            PendingUpload upload = uploads.remove(requestId);
+                            if (upload != null) {
+                                stopReceiving(receiving, upload.fileName);
+                                upload.abort();
+                            }
+                            break;
+                        }
+                        case FrameProtocol.DATA: {
+                            PendingUpload upload = uploads.get(requestId);
+                            if (upload == null) {
+                                replyError(frameOut, requestId, "Aucun upload en cours pour la requête " + requestId);
+                                break;
+                            }
+                            upload.write(payload);
+                            if (upload.isComplete()) {
+                                completeUpload(uploads.remove(requestId), slots, receiving);
+                            }
+                            break;
+                        }
+                        default:
+                            replyError(frameOut, requestId, "Opération inconnue : " + type);
+                    }
+                }
+            } finally {
+                for (PendingUpload upload : uploads.values()) {
+                    upload.abort();
                 }
             }
+        }
 
-            out.writeBoolean(overallSuccess);
-            if (overallSuccess) {
-                System.out.println("Fichier supprimé avec succès : " + fileName);
-            } else {
-                System.err.println("Erreur lors de la suppression du fichier : " + fileName);
+        /**
+         * Réserve une place parmi les requêtes en cours de la session ; quand il n'y en a
+         * plus, la lecture des trames s'arrête jusqu'à la fin d'une requête. Seule une
+         * requête qui peut aboutir sans autre trame du client prend une place : une
+         * requête sur un nom dont un upload est encore en réception attend des trames
+         * DATA qu'il faut continuer à lire, elle n'en prend pas. Retourne true si une
+         * place a été prise.
+         */
+        private boolean acquireSlot(Semaphore slots, Map<String, Integer> receiving, String fileName)
+                throws InterruptedIOException {
+            if (fileName != null && receiving.containsKey(fileName)) {
+                return false;
+            }
+            try {
+                slots.acquire();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Session interrompue");
+            }
+        }
+
+        private Runnable releasing(Semaphore slots, boolean held, Runnable task) {
+            if (!held) {
+                return task;
+            }
+            return () -> {
+                try {
+                    task.run();
+                } finally {
+                    slots.release();
+                }
+            };
+        }
+
+        /**
+         * Dernières données d'un upload reçues : le stockage prend une place, puis peut démarrer.
+         */
+        private void completeUpload(PendingUpload upload, Semaphore slots, Map<String, Integer> receiving)
+                throws IOException {
+            stopReceiving(receiving, upload.fileName);
+            upload.holdsSlot = acquireSlot(slots, receiving, upload.fileName);
+            upload.close();
+        }
+
+        private void stopReceiving(Map<String, Integer> receiving, String fileName) {
+            receiving.computeIfPresent(fileName, (name, count) -> count == 1 ? null : count - 1);
+        }
+
+        /**
+         * Exécute task sur requestPool après l'opération précédente de la session sur le
+         * même nom et, si ready n'est pas null, une fois ready terminé.
+         */
+        private void inOrder(Map<String, CompletableFuture<Void>> queues, String fileName,
+                             CompletableFuture<Void> ready, Runnable task) {
+            CompletableFuture<Void> previous = queues.getOrDefault(fileName, CompletableFuture.completedFuture(null));
+            if (ready != null) {
+                previous = previous.thenCombine(ready, (a, b) -> null);
+            }
+            CompletableFuture<Void> next = previous.thenRunAsync(task, requestPool).exceptionally(e -> {
+                System.err.println("Erreur lors du traitement de " + fileName + " : " + e.getMessage());
+                return null;
+            });
+            queues.put(fileName, next);
+            next.thenRun(() -> queues.remove(fileName, next));
+        }
+
+        private void framedStore(DataOutputStream frameOut, int requestId, PendingUpload upload) {
+            try {
+                if (upload.cancelled) {
+                    replyError(frameOut, requestId, "Upload annulé : " + upload.fileName);
+                } else if (storeFile(upload.fileName, upload.tempFile)) {
+                    reply(frameOut, requestId, FrameProtocol.OK, new byte[0]);
+                } else {
+                    replyError(frameOut, requestId, "Erreur lors de la distribution du fichier : " + upload.fileName);
+                }
+            } catch (IOException | RuntimeException e) {
+                replyFailure(frameOut, requestId, "Erreur lors de la distribution du fichier", e);
+            }
+        }
+
+        private void framedRemove(DataOutputStream frameOut, int requestId, String fileName) {
+            try {
+                markRemoved(fileName);
+                reply(frameOut, requestId, FrameProtocol.OK, new byte[0]);
+            } catch (IOException | RuntimeException e) {
+                replyFailure(frameOut, requestId, "Erreur lors de la suppression du fichier", e);
+            }
+        }
+
+        private void framedList(DataOutputStream frameOut, int requestId) {
+            try {
+                Set<String> uniqueFiles = collectFileNames();
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                DataOutputStream payloadOut = new DataOutputStream(payload);
+                payloadOut.writeInt(uniqueFiles.size());
+                for (String fileName : uniqueFiles) {
+                    FrameProtocol.writeString(payloadOut, fileName);
+                }
+                reply(frameOut, requestId, FrameProtocol.OK, payload.toByteArray());
+            } catch (IOException | RuntimeException e) {
+                replyFailure(frameOut, requestId, "Erreur lors de la liste des fichiers", e);
+            }
+        }
+
+        private void framedDownload(DataOutputStream frameOut, int requestId, String fileName) {
+            try {
+                DataOutputStream body = new DataOutputStream(new FrameOutputStream(frameOut, requestId));
+                if (!garbageCollector.isRemoved(fileName) && fileCache.serve(fileName, body, clientAddress())) {
+                    body.flush();
+                    reply(frameOut, requestId, FrameProtocol.END, new byte[0]);
+                    System.out.println("Fichier envoyé avec succès : " + fileName);
+                } else {
+                    replyError(frameOut, requestId, "Fichier introuvable : " + fileName);
+                }
+            } catch (IOException | RuntimeException e) {
+                replyFailure(frameOut, requestId, "Erreur lors de l'envoi du fichier", e);
+            }
+        }
+
+        private void reply(DataOutputStream frameOut, int requestId, byte type, byte[] payload) throws IOException {
+            synchronized (frameOut) {
+                FrameProtocol.writeFrame(frameOut, requestId, type, payload, 0, payload.length);
+                frameOut.flush();
+            }
+        }
+
+        private void replyError(DataOutputStream frameOut, int requestId, String message) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            FrameProtocol.writeString(new DataOutputStream(payload), message);
+            reply(frameOut, requestId, FrameProtocol.ERROR, payload.toByteArray());
+        }
+
+        /**
+         * Échec d'une requête traitée sur requestPool, même après des trames DATA. Si la
+         * trame ERROR ne peut pas partir, la connexion est fermée pour que le client
+         * abandonne ses requêtes en cours au lieu d'attendre une réponse.
+         */
+        private void replyFailure(DataOutputStream frameOut, int requestId, String context, Exception e) {
+            String message = context + " : " + (e.getMessage() != null ? e.getMessage() : e.toString());
+            System.err.println(message);
+            try {
+                replyError(frameOut, requestId, message);
+            } catch (IOException closed) {
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {
+                    // Déjà fermée
+                }
             }
         }
 
@@ -273,6 +598,7 @@ public class MainServer {
                 for (int i = 0; i < serverCount; i++) {
                     SubServerInfo subServer = subServers.get(i);
                     try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
+                        DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
                         DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
                         
                         subOut.writeUTF("UPLOAD");
@@ -284,17 +610,1471 @@ public class MainServer {
                         }
                         subOut.writeLong(thisChunkSize);
 
+                        TransferScheduler.Throttle throttle = transferScheduler.forSubServer(i + 1, thisChunkSize);
                         byte[] buffer = new byte[CHUNK_SIZE];
                         long remaining = thisChunkSize;
                         while (remaining > 0) {
                             int read = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
                             if (read == -1) break;
+                            throttle.acquire(read);
                             subOut.write(buffer, 0, read);
                             remaining -= read;
                         }
+
+                        // Attendre l'écriture de la partie avant de considérer l'upload terminé
+                        if (!subIn.readBoolean()) {
+                            throw new IOException("Écriture refusée par le sous-serveur " + (i + 1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconstruit un fichier à partir de ses parties sur les sous-serveurs.
+     * Retourne false si une partie est introuvable.
+     */
+    private boolean fetchFile(String fileName, File target) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            for (int i = 0; i < subServers.size(); i++) {
+                SubServerInfo subServer = subServers.get(i);
+                try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
+                    DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
+                    DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
+
+                    subOut.writeUTF("DOWNLOAD");
+                    subOut.writeUTF(fileName + ".part" + (i + 1));
+
+                    long chunkSize = subIn.readLong();
+                    if (chunkSize == -1) {
+                        return false;
+                    }
+
+                    TransferScheduler.Throttle throttle = transferScheduler.forSubServer(i + 1, chunkSize);
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    long remaining = chunkSize;
+                    while (remaining > 0) {
+                        int read = subIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new EOFException("Partie tronquée : " + fileName + ".part" + (i + 1));
+                        }
+                        throttle.acquire(read);
+                        fos.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Envoie au client les signatures de la version stockée, calculées par chaque
+     * sous-serveur sur sa propre partie, et retourne la longueur de chaque partie.
+     * Si une partie est absente ou inaccessible, le fichier est annoncé absent et la
+     * méthode retourne null : le client envoie alors tout le fichier.
+     */
+    private long[] sendPartSignatures(String fileName, DataOutputStream out) throws IOException {
+        int serverCount = subServers.size();
+        List<Socket> sockets = new ArrayList<>();
+        List<DataInputStream> inputs = new ArrayList<>();
+        List<DataOutputStream> outputs = new ArrayList<>();
+        try {
+            long[] partLengths = new long[serverCount];
+            long fileSize = 0;
+            boolean complete = true;
+            try {
+                for (int i = 0; i < serverCount && complete; i++) {
+                    SubServerInfo subServer = subServers.get(i);
+                    Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort());
+                    sockets.add(subServerSocket);
+                    DataInputStream subIn = new DataInputStream(new BufferedInputStream(subServerSocket.getInputStream()));
+                    DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
+                    inputs.add(subIn);
+                    outputs.add(subOut);
+
+                    subOut.writeUTF("SIGNATURES");
+                    subOut.writeUTF(fileName + ".part" + (i + 1));
+                    partLengths[i] = subIn.readLong();
+                    complete = partLengths[i] >= 0;
+                    fileSize += partLengths[i];
+                }
+            } catch (IOException e) {
+                System.err.println("Version stockée indisponible, envoi complet : " + e.getMessage());
+                complete = false;
+            }
+
+            if (!complete) {
+                for (DataOutputStream subOut : outputs) {
+                    try {
+                        subOut.writeInt(0);
+                    } catch (IOException e) {
+                        // Le sous-serveur abandonne aussi à la fermeture de la connexion
+                    }
+                }
+                DeltaSync.writeNoSignatures(out);
+                return null;
+            }
+
+            // Même taille de bloc pour toutes les parties, choisie d'après la taille du fichier entier
+            int blockSize = DeltaSync.blockSize(fileSize);
+            long blockCount = 0;
+            for (int i = 0; i < serverCount; i++) {
+                outputs.get(i).writeInt(blockSize);
+                blockCount += partLengths[i] / blockSize;
+            }
+            DeltaSync.writeHeader(out, fileSize, blockSize, (int) blockCount);
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            for (int i = 0; i < serverCount; i++) {
+                long remaining = partLengths[i] / blockSize * DeltaSync.SIGNATURE_SIZE;
+                while (remaining > 0) {
+                    int read = inputs.get(i).read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Signatures incomplètes pour la partie " + (i + 1));
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            return partLengths;
+        } finally {
+            for (Socket subServerSocket : sockets) {
+                subServerSocket.close();
+            }
+        }
+    }
+
+    private static long partOffset(long fileSize, int serverCount, int index) {
+        return (fileSize / serverCount) * index;
+    }
+
+    private static long partLength(long fileSize, int serverCount, int index) {
+        long length = fileSize / serverCount;
+        if (index == serverCount - 1) {
+            length += fileSize % serverCount;
+        }
+        return length;
+    }
+
+    /**
+     * Verrou en écriture sur un nom de fichier, pris par UPLOAD et SYNC pendant qu'ils
+     * remplacent les parties.
+     */
+    private FileLock lockFile(String fileName) {
+        FileLock lock;
+        synchronized (fileLocks) {
+            lock = fileLocks.computeIfAbsent(fileName, k -> new FileLock());
+            lock.users++;
+        }
+        lock.lock.writeLock().lock();
+        return lock;
+    }
+
+    /**
+     * Verrou en lecture pour le ramasse-miettes, sans attendre ; null si le fichier est en cours d'écriture.
+     */
+    private FileLock tryReadLockFile(String fileName) {
+        synchronized (fileLocks) {
+            FileLock lock = fileLocks.computeIfAbsent(fileName, k -> new FileLock());
+            if (!lock.lock.readLock().tryLock()) {
+                if (lock.users == 0) {
+                    fileLocks.remove(fileName);
+                }
+                return null;
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private void unlockFile(String fileName, FileLock lock) {
+        if (lock.lock.isWriteLockedByCurrentThread()) {
+            lock.lock.writeLock().unlock();
+        } else {
+            lock.lock.readLock().unlock();
+        }
+        synchronized (fileLocks) {
+            if (--lock.users == 0) {
+                fileLocks.remove(fileName);
+            }
+        }
+    }
+
+    private List<String> listSubServer(SubServerInfo subServer) throws IOException {
+        try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
+            DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
+            DataOutputStream subOut = new DataOutputStream(subServerSocket.getOutputStream());
+
+            subOut.writeUTF("LIST");
+            int fileCount = subIn.readInt();
+
+            List<String> fileNames = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                fileNames.add(subIn.readUTF());
+            }
+            return fileNames;
+        }
+    }
+
+    /**
+     * Cache de lecture des fichiers reconstruits, à deux niveaux : mémoire hors tas
+     * (ByteBuffer direct) puis disque local optionnel. Les entrées sont indexées par
+     * nom et version ; UPLOAD et REMOVE libèrent les entrées du nom. L'admission suit le
+     * principe TinyLFU : un nouveau fichier n'évince une entrée LRU que s'il est
+     * demandé plus souvent qu'elle. Les échecs simultanés pour un même fichier ne
+     * déclenchent qu'une seule reconstruction.
+     */
+    private class FileCache {
+        private final long memoryMax;
+        private final long diskMax;
+        private final File diskDirectory;
+
+        private final Map<String, Version> versions = new HashMap<>();
+        private final LinkedHashMap<String, ByteBuffer> memoryTier = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, File> diskTier = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Load> inFlight = new HashMap<>();
+        private final FrequencySketch sketch = new FrequencySketch();
+        private final ExecutorService admissionPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ADMISSION_QUEUE_SIZE));
+        private long memoryUsed;
+        private long diskUsed;
+        private long lastVersion;
+
+        FileCache(long memoryMax, String diskDirectory, long diskMax) {
+            this.memoryMax = memoryMax;
+            this.diskMax = diskMax;
+            if (diskDirectory == null || diskDirectory.isEmpty()) {
+                this.diskDirectory = null;
+            } else {
+                this.diskDirectory = new File(diskDirectory);
+                this.diskDirectory.mkdirs();
+                // Seuls les fichiers créés par le cache : le répertoire peut en contenir d'autres
+                File[] stale = this.diskDirectory.listFiles(
+                        (dir, name) -> name.startsWith("cache") && name.endsWith(".bin"));
+                if (stale != null) {
+                    for (File file : stale) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Envoie la taille puis le contenu du fichier sur out.
+         * Retourne false, sans rien écrire, si le fichier est introuvable.
+         */
+        boolean serve(String fileName, DataOutputStream out, String client) throws IOException {
+            String key;
+            ByteBuffer cached = null;
+            InputStream diskStream = null;
+            long diskSize = 0;
+            Load load;
+            boolean leader = false;
+
+            synchronized (this) {
+                key = keyOf(fileName);
+                sketch.increment(key);
+                ByteBuffer buffer = memoryTier.get(key);
+                if (buffer != null) {
+                    cached = buffer.duplicate();
+                } else {
+                    File file = diskTier.get(key);
+                    if (file != null) {
+                        // Ouvert sous le verrou pour qu'une éviction ne supprime pas le fichier avant lecture
+                        diskStream = new FileInputStream(file);
+                        diskSize = file.length();
+                    }
+                }
+                if (cached == null && diskStream == null) {
+                    load = inFlight.get(key);
+                    if (load == null) {
+                        load = new Load();
+                        inFlight.put(key, load);
+                        retain(fileName);
+                        leader = true;
+                    }
+                    load.readers++;
+                } else {
+                    load = null;
+                }
+            }
+
+            if (cached != null) {
+                TransferScheduler.Throttle throttle = transferScheduler.forClient(client, cached.remaining());
+                out.writeLong(cached.remaining());
+                byte[] chunk = new byte[CHUNK_SIZE];
+                while (cached.hasRemaining()) {
+                    int length = Math.min(chunk.length, cached.remaining());
+                    cached.get(chunk, 0, length);
+                    throttle.acquire(length);
+                    out.write(chunk, 0, length);
+                }
+                return true;
+            }
+
+            if (diskStream != null) {
+                try (InputStream fis = diskStream) {
+                    out.writeLong(diskSize);
+                    copy(fis, out, transferScheduler.forClient(client, diskSize));
+                }
+                return true;
+            }
+
+            if (leader) {
+                fetch(fileName, key, load);
+            }
+
+            try {
+                File source = load.future.join();
+                if (source == null) {
+                    return false;
+                }
+                out.writeLong(source.length());
+                try (FileInputStream fis = new FileInputStream(source)) {
+                    copy(fis, out, transferScheduler.forClient(client, source.length()));
+                }
+                return true;
+            } catch (CompletionException e) {
+                System.err.println("Erreur lors de la reconstruction du fichier : " + e.getCause().getMessage());
+                return false;
+            } finally {
+                release(load);
+            }
+        }
+
+        /**
+         * Libère les entrées en cache du fichier et change sa version si un chargement
+         * est encore en cours, pour que son résultat ne soit ni partagé ni admis.
+         */
+        synchronized void invalidate(String fileName) {
+            String oldKey = keyOf(fileName);
+
+            ByteBuffer buffer = memoryTier.remove(oldKey);
+            if (buffer != null) {
+                memoryUsed -= buffer.capacity();
+                releaseVersion(fileName);
+            }
+            File file = diskTier.remove(oldKey);
+            if (file != null) {
+                diskUsed -= file.length();
+                file.delete();
+                releaseVersion(fileName);
+            }
+
+            Version version = versions.get(fileName);
+            if (version != null) {
+                version.number = ++lastVersion;
+            }
+        }
+
+        /**
+         * Un nom n'a de version enregistrée que tant qu'une entrée ou un chargement y fait
+         * référence : sans référence, aucune ancienne clé ne peut plus être confondue avec
+         * la clé par défaut, et la table ne grossit pas avec chaque nom supprimé.
+         */
+        private String keyOf(String fileName) {
+            Version version = versions.get(fileName);
+            return fileName + "#" + (version == null ? 0 : version.number);
+        }
+
+        private void retain(String fileName) {
+            versions.computeIfAbsent(fileName, k -> new Version()).references++;
+        }
+
+        private void releaseVersion(String fileName) {
+            Version version = versions.get(fileName);
+            if (--version.references == 0) {
+                versions.remove(fileName);
+            }
+        }
+
+        private synchronized void endLoad(String fileName, String key) {
+            inFlight.remove(key);
+            releaseVersion(fileName);
+        }
+
+        private void fetch(String fileName, String key, Load load) {
+            File tempFile = null;
+            File fetched = null;
+            boolean finished = false;
+            try {
+                tempFile = File.createTempFile("download", ".tmp");
+                if (fetchFile(fileName, tempFile)) {
+                    fetched = tempFile;
+                    load.file = tempFile;
+                } else {
+                    tempFile.delete();
+                }
+                finished = true;
+            } catch (IOException | RuntimeException e) {
+                load.future.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    if (finished && fetched != null) {
+                        // Le fichier reconstruit doit survivre aux lecteurs jusqu'à la fin de la mise en cache
+                        load.readers++;
+                    } else {
+                        endLoad(fileName, key);
+                    }
+                }
+                // Les clients en attente ne doivent jamais rester bloqués, même sur une Error
+                if (finished) {
+                    load.future.complete(fetched);
+                } else {
+                    if (tempFile != null) {
+                        tempFile.delete();
                     }
+                    load.future.completeExceptionally(new IOException("Reconstruction interrompue : " + fileName));
                 }
             }
+
+            if (finished && fetched != null) {
+                admitLater(fileName, key, load);
+            }
+        }
+
+        /**
+         * Met le fichier en cache sur admissionPool, sans retarder l'envoi au client qui
+         * l'a demandé. Le chargement reste dans inFlight jusque-là : les clients qui
+         * arrivent entre-temps lisent le fichier reconstruit. La mise en cache est
+         * facultative : un échec, ou une file d'admission pleine, est seulement ignoré.
+         */
+        private void admitLater(String fileName, String key, Load load) {
+            Runnable admission = () -> {
+                try {
+                    admit(fileName, key, load.file);
+                } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                    System.err.println("Mise en cache impossible pour " + fileName + " : " + e);
+                } finally {
+                    endLoad(fileName, key);
+                    release(load);
+                }
+            };
+            try {
+                admissionPool.execute(admission);
+            } catch (RejectedExecutionException e) {
+                endLoad(fileName, key);
+                release(load);
+            }
+        }
+
+        private void release(Load load) {
+            synchronized (this) {
+                if (--load.readers > 0 || load.file == null) {
+                    return;
+                }
+            }
+            load.file.delete();
+        }
+
+        /**
+         * Place le fichier reconstruit dans le niveau mémoire s'il y tient,
+         * sinon dans le niveau disque, en respectant la politique d'admission.
+         */
+        private void admit(String fileName, String key, File source) throws IOException {
+            long size = source.length();
+
+            // Un fichier qui occuperait plus d'un quart de la mémoire irait vider tout le niveau
+            if (size <= memoryMax / 4 && size <= Integer.MAX_VALUE) {
+                synchronized (this) {
+                    if (!key.equals(keyOf(fileName)) || memoryTier.containsKey(key)
+                            || !makeRoom(memoryTier, key, size)) {
+                        return;
+                    }
+                }
+                // La place est réservée dans memoryUsed : la rendre si l'entrée n'est pas ajoutée
+                boolean added = false;
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+                    try (FileChannel channel = new FileInputStream(source).getChannel()) {
+                        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                        }
+                    }
+                    buffer.flip();
+                    synchronized (this) {
+                        if (key.equals(keyOf(fileName)) && !memoryTier.containsKey(key)) {
+                            memoryTier.put(key, buffer);
+                            retain(fileName);
+                            added = true;
+                        }
+                    }
+                } finally {
+                    if (!added) {
+                        synchronized (this) {
+                            memoryUsed -= size;
+                        }
+                    }
+                }
+                return;
+            }
+
+            if (diskDirectory == null || size > diskMax / 4) {
+                return;
+            }
+            synchronized (this) {
+                if (!key.equals(keyOf(fileName)) || diskTier.containsKey(key)
+                        || !makeRoom(diskTier, key, size)) {
+                    return;
+                }
+            }
+            File target = null;
+            boolean added = false;
+            try {
+                target = File.createTempFile("cache", ".bin", diskDirectory);
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                synchronized (this) {
+                    if (key.equals(keyOf(fileName)) && !diskTier.containsKey(key)) {
+                        diskTier.put(key, target);
+                        retain(fileName);
+                        added = true;
+                    }
+                }
+            } finally {
+                if (!added) {
+                    synchronized (this) {
+                        diskUsed -= size;
+                    }
+                    if (target != null) {
+                        target.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Évince les entrées les moins récemment utilisées jusqu'à libérer size octets,
+         * puis réserve cette place. Refuse l'admission si le candidat est moins fréquent
+         * qu'une victime.
+         */
+        private boolean makeRoom(LinkedHashMap<String, ?> tier, String key, long size) {
+            boolean memory = tier == memoryTier;
+            long max = memory ? memoryMax : diskMax;
+            long used = memory ? memoryUsed : diskUsed;
+            int candidateFrequency = sketch.frequency(key);
+
+            List<String> victims = new ArrayList<>();
+            long freed = 0;
+            // Parcours des entrées sans get() : en ordre d'accès, get() modifierait la liste parcourue
+            Iterator<? extends Map.Entry<String, ?>> eldest = tier.entrySet().iterator();
+            while (used - freed + size > max) {
+                if (!eldest.hasNext()) {
+                    return false;
+                }
+                Map.Entry<String, ?> victim = eldest.next();
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    return false;
+                }
+                victims.add(victim.getKey());
+                Object value = victim.getValue();
+                freed += memory ? ((ByteBuffer) value).capacity() : ((File) value).length();
+            }
+
+            for (String victim : victims) {
+                if (memory) {
+                    memoryUsed -= memoryTier.remove(victim).capacity();
+                } else {
+                    File file = diskTier.remove(victim);
+                    diskUsed -= file.length();
+                    file.delete();
+                }
+                releaseVersion(victim.substring(0, victim.lastIndexOf('#')));
+            }
+            if (memory) {
+                memoryUsed += size;
+            } else {
+                diskUsed += size;
+            }
+            return true;
+        }
+
+        private void copy(InputStream input, OutputStream output, TransferScheduler.Throttle throttle) throws IOException {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) != -1) {
+                throttle.acquire(bytesRead);
+                output.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    /**
+     * Reconstruction des parties pendant un SYNC. Les instructions du client arrivent
+     * dans l'ordre du nouveau fichier et sont découpées aux limites des nouvelles
+     * parties : un bloc déjà présent dans la partie en cours devient une copie locale
+     * sur son sous-serveur, un bloc venu d'une autre partie est lu sur celui qui le
+     * détient. Chaque sous-serveur garde l'ancienne partie jusqu'à commit().
+     */
+    private class PartRebuilder implements DeltaSync.Sink, Closeable {
+        final int blockSize;
+        final long blockCount;
+        long copied;
+        long moved;
+        long received;
+
+        private final String fileName;
+        private final long[] oldLengths;
+        private final long[] newLengths;
+        private final Socket[] targets;
+        private final DataInputStream[] targetIn;
+        private final DataOutputStream[] targetOut;
+        private final TransferScheduler.Throttle[] throttles;
+        private final Socket[] sources;
+        private final DataInputStream[] sourceIn;
+        private final DataOutputStream[] sourceOut;
+        private final byte[] buffer;
+        private int current = -1;
+        private long remaining;
+
+        PartRebuilder(String fileName, long[] oldLengths, long newSize) throws IOException {
+            if (newSize < 0) {
+                throw new IOException("Taille invalide : " + newSize);
+            }
+            int serverCount = subServers.size();
+            long oldSize = 0;
+            if (oldLengths != null) {
+                for (long length : oldLengths) {
+                    oldSize += length;
+                }
+            }
+            this.blockSize = DeltaSync.blockSize(oldSize);
+            long count = 0;
+            if (oldLengths != null) {
+                for (long length : oldLengths) {
+                    count += length / blockSize;
+                }
+            }
+            this.blockCount = count;
+            this.fileName = fileName;
+            this.oldLengths = oldLengths;
+            this.newLengths = new long[serverCount];
+            for (int i = 0; i < serverCount; i++) {
+                newLengths[i] = partLength(newSize, serverCount, i);
+            }
+            this.targets = new Socket[serverCount];
+            this.targetIn = new DataInputStream[serverCount];
+            this.targetOut = new DataOutputStream[serverCount];
+            this.throttles = new TransferScheduler.Throttle[serverCount];
+            this.sources = new Socket[serverCount];
+            this.sourceIn = new DataInputStream[serverCount];
+            this.sourceOut = new DataOutputStream[serverCount];
+            this.buffer = new byte[blockSize];
+        }
+
+        @Override
+        public void copy(long block) throws IOException {
+            int part = 0;
+            while (block >= oldLengths[part] / blockSize) {
+                block -= oldLengths[part] / blockSize;
+                part++;
+            }
+            long offset = block * blockSize;
+            int length = blockSize;
+            while (length > 0) {
+                advance();
+                int count = (int) Math.min(length, remaining);
+                if (part == current) {
+                    targetOut[current].writeByte(DeltaSync.COPY);
+                    targetOut[current].writeLong(offset);
+                    targetOut[current].writeInt(count);
+                    copied += count;
+                } else {
+                    readRange(part, offset, count);
+                    writeData(buffer, 0, count);
+                    moved += count;
+                }
+                offset += count;
+                length -= count;
+                remaining -= count;
+            }
+        }
+
+        @Override
+        public void data(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                advance();
+                int count = (int) Math.min(length, remaining);
+                writeData(data, offset, count);
+                received += count;
+                offset += count;
+                length -= count;
+                remaining -= count;
+            }
+        }
+
+        /**
+         * Termine les parties restantes, qui doivent être complètes ; chaque sous-serveur
+         * confirme alors que sa nouvelle partie est prête.
+         */
+        void finish() throws IOException {
+            while (true) {
+                if (remaining > 0) {
+                    throw new IOException("Fichier incomplet : " + remaining + " octets manquants dans la partie "
+                            + (current + 1));
+                }
+                if (current >= 0) {
+                    endPart(current);
+                }
+                if (current == newLengths.length - 1) {
+                    return;
+                }
+                current++;
+                openPart(current);
+                remaining = newLengths[current];
+            }
+        }
+
+        /**
+         * Remplace les anciennes parties par les nouvelles, après finish().
+         */
+        void commit() throws IOException {
+            for (DataOutputStream out : targetOut) {
+                out.writeBoolean(true);
+                out.flush();
+            }
+            for (int i = 0; i < targetIn.length; i++) {
+                if (!targetIn[i].readBoolean()) {
+                    throw new IOException("Remplacement impossible : " + partName(i));
+                }
+            }
+        }
+
+        /**
+         * Ferme les connexions ; une partie non confirmée est abandonnée par son sous-serveur.
+         */
+        @Override
+        public void close() {
+            for (int i = 0; i < sources.length; i++) {
+                try {
+                    if (sources[i] != null) {
+                        sourceOut[i].writeLong(-1);
+                        sourceOut[i].flush();
+                        sources[i].close();
+                    }
+                } catch (IOException e) {
+                    // La connexion est de toute façon abandonnée
+                }
+                try {
+                    if (targets[i] != null) {
+                        targets[i].close();
+                    }
+                } catch (IOException e) {
+                    // La connexion est de toute façon abandonnée
+                }
+            }
+        }
+
+        private void advance() throws IOException {
+            while (remaining == 0) {
+                if (current == newLengths.length - 1) {
+                    throw new IOException("Données au-delà de la taille annoncée");
+                }
+                if (current >= 0) {
+                    endPart(current);
+                }
+                current++;
+                openPart(current);
+                remaining = newLengths[current];
+            }
+        }
+
+        private void openPart(int index) throws IOException {
+            SubServerInfo subServer = subServers.get(index);
+            targets[index] = new Socket(subServer.getHost(), subServer.getPort());
+            targetIn[index] = new DataInputStream(targets[index].getInputStream());
+            targetOut[index] = new DataOutputStream(new BufferedOutputStream(targets[index].getOutputStream()));
+            throttles[index] = transferScheduler.forSubServer(index + 1, newLengths[index]);
+
+            targetOut[index].writeUTF("REBUILD");
+            targetOut[index].writeUTF(partName(index));
+            targetOut[index].writeLong(newLengths[index]);
+        }
+
+        private void endPart(int index) throws IOException {
+            targetOut[index].writeByte(DeltaSync.END);
+            targetOut[index].flush();
+            if (!targetIn[index].readBoolean()) {
+                throw new IOException("Reconstruction refusée : " + partName(index));
+            }
+        }
+
+        private void writeData(byte[] data, int offset, int length) throws IOException {
+            throttles[current].acquire(length);
+            targetOut[current].writeByte(DeltaSync.DATA);
+            targetOut[current].writeInt(length);
+            targetOut[current].write(data, offset, length);
+        }
+
+        private void readRange(int part, long offset, int length) throws IOException {
+            if (sources[part] == null) {
+                SubServerInfo subServer = subServers.get(part);
+                sources[part] = new Socket(subServer.getHost(), subServer.getPort());
+                sourceIn[part] = new DataInputStream(new BufferedInputStream(sources[part].getInputStream()));
+                sourceOut[part] = new DataOutputStream(new BufferedOutputStream(sources[part].getOutputStream()));
+                sourceOut[part].writeUTF("READ");
+                sourceOut[part].writeUTF(partName(part));
+            }
+            sourceOut[part].writeLong(offset);
+            sourceOut[part].writeInt(length);
+            sourceOut[part].flush();
+            sourceIn[part].readFully(buffer, 0, length);
+        }
+
+        private String partName(int index) {
+            return fileName + ".part" + (index + 1);
+        }
+    }
+
+    /**
+     * Version courante d'un nom dans le cache et nombre d'entrées ou de chargements qui l'utilisent.
+     */
+    private static class Version {
+        long number;
+        int references;
+    }
+
+    /**
+     * Upload reçu par trames DATA, écrit dans un fichier temporaire jusqu'à la taille annoncée.
+     */
+    private static class PendingUpload {
+        final String fileName;
+        final File tempFile;
+        private final long fileSize;
+        private final TransferScheduler.Throttle throttle;
+        private final OutputStream output;
+        private long received;
+        /** Terminé quand toutes les données sont reçues, ou à l'abandon (cancelled). */
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        volatile boolean cancelled;
+        /** Fixé avant ready : le stockage libère alors une place de la session. */
+        boolean holdsSlot;
+
+        PendingUpload(String fileName, long fileSize, TransferScheduler.Throttle throttle) throws IOException {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.throttle = throttle;
+            this.tempFile = File.createTempFile("upload", ".tmp");
+            this.output = new BufferedOutputStream(new FileOutputStream(tempFile));
+        }
+
+        void write(byte[] data) throws IOException {
+            if (received + data.length > fileSize) {
+                throw new IOException("Données au-delà de la taille annoncée pour " + fileName);
+            }
+            throttle.acquire(data.length);
+            output.write(data);
+            received += data.length;
+        }
+
+        boolean isComplete() {
+            return received == fileSize;
+        }
+
+        void close() throws IOException {
+            output.close();
+            ready.complete(null);
+        }
+
+        /**
+         * Abandonne l'upload ; les opérations suivantes sur le même nom ne l'attendent plus.
+         */
+        void abort() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la fermeture de l'upload : " + e.getMessage());
+            }
+            tempFile.delete();
+            cancelled = true;
+            ready.complete(null);
+        }
+    }
+
+    /**
+     * Découpe un flux de réponse en trames DATA d'un même numéro de requête.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream frameOut;
+        private final int requestId;
+        private final byte[] buffer = new byte[FrameProtocol.DATA_CHUNK_SIZE];
+        private int count;
+
+        FrameOutputStream(DataOutputStream frameOut, int requestId) {
+            this.frameOut = frameOut;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            synchronized (frameOut) {
+                FrameProtocol.writeFrame(frameOut, requestId, FrameProtocol.DATA, buffer, 0, count);
+                frameOut.flush();
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Reconstruction en cours, partagée par tous les clients qui demandent le même fichier.
+     */
+    private static class Load {
+        final CompletableFuture<File> future = new CompletableFuture<>();
+        File file;
+        int readers;
+    }
+
+    /**
+     * Estimation approximative des fréquences d'accès (count-min sketch à 4 lignes),
+     * divisée par deux périodiquement pour oublier les anciens accès.
+     */
+    private static class FrequencySketch {
+        private static final int WIDTH = 4096;
+        private static final int RESET_THRESHOLD = WIDTH * 10;
+        private final int[][] counters = new int[4][WIDTH];
+        private int additions;
+
+        void increment(String key) {
+            for (int row = 0; row < counters.length; row++) {
+                counters[row][index(key, row)]++;
+            }
+            if (++additions >= RESET_THRESHOLD) {
+                for (int[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < counters.length; row++) {
+                min = Math.min(min, counters[row][index(key, row)]);
+            }
+            return min;
+        }
+
+        private int index(String key, int row) {
+            int hash = key.hashCode() * (0x9E3779B9 + 2 * row);
+            hash ^= hash >>> 16;
+            return hash & (WIDTH - 1);
+        }
+    }
+
+    /**
+     * Suppression différée : REMOVE pose une pierre tombale et répond aussitôt. Chaque
+     * pose ou levée de pierre tombale est ajoutée au journal gc.tombstone.file.log ;
+     * gc.tombstone.file n'est réécrit en entier que par le ramasse-miettes, quand des
+     * pierres tombales disparaissent. Un thread de fond supprime ensuite les
+     * parties par lots, en parallèle sur tous les sous-serveurs, et réessaie à chaque
+     * passage ceux qui étaient injoignables. Tous les gc.sweep.every passages
+     * planifiés, les inventaires des sous-serveurs sont comparés pour retrouver les
+     * parties orphelines.
+     */
+    private class GarbageCollector {
+        private final File tombstoneFile;
+        private final File journalFile;
+        private final File oldJournalFile;
+        private final Object journalLock = new Object();
+        private Writer journal;
+        private final int interval;
+        private final int batchSize;
+        private final int sweepEvery;
+        private final long incompleteGraceMillis;
+        private final Map<String, Tombstone> tombstones = new ConcurrentHashMap<>();
+        private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private ExecutorService workers;
+        private Map<String, Long> incompleteSince = new HashMap<>();
+        private Map<String, Long> misplacedSince = new HashMap<>();
+        private int ticks;
+
+        GarbageCollector(String tombstoneFile, int interval, int batchSize, int sweepEvery, long incompleteGrace) {
+            this.tombstoneFile = new File(tombstoneFile);
+            this.journalFile = new File(tombstoneFile + ".log");
+            this.oldJournalFile = new File(tombstoneFile + ".log.old");
+            this.interval = interval;
+            this.batchSize = batchSize;
+            this.sweepEvery = sweepEvery;
+            this.incompleteGraceMillis = incompleteGrace * 1000;
+        }
+
+        void start() {
+            workers = Executors.newFixedThreadPool(subServers.size());
+            try {
+                if (tombstoneFile.exists()) {
+                    for (String fileName : Files.readAllLines(tombstoneFile.toPath(), StandardCharsets.UTF_8)) {
+                        if (!fileName.isEmpty()) {
+                            tombstones.put(fileName, new Tombstone(allServers()));
+                        }
+                    }
+                }
+                replay(oldJournalFile);
+                replay(journalFile);
+                System.out.println("Suppressions en attente : " + tombstones.size());
+
+                // Repartir d'un journal vide, sauf si l'état n'a pas pu être réécrit
+                if (writeSnapshot()) {
+                    Files.deleteIfExists(oldJournalFile.toPath());
+                    Files.deleteIfExists(journalFile.toPath());
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur de lecture des suppressions en attente : " + e.getMessage());
+            }
+            try {
+                journal = openJournal();
+            } catch (IOException e) {
+                System.err.println("Erreur d'écriture des suppressions en attente : " + e.getMessage());
+            }
+            scheduler.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Rejoue un journal : "+" puis tabulation et nom pose une pierre tombale, "-" la
+         * lève. Une dernière ligne sans fin de ligne (arrêt pendant l'écriture) est ignorée.
+         */
+        private void replay(File file) throws IOException {
+            if (!file.exists()) {
+                return;
+            }
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            int start = 0;
+            int end;
+            while ((end = content.indexOf('\n', start)) != -1) {
+                String line = content.substring(start, end);
+                start = end + 1;
+                if (line.length() < 2 || line.charAt(1) != '\t') {
+                    continue;
+                }
+                String fileName = line.substring(2);
+                if (line.charAt(0) == '+') {
+                    tombstones.putIfAbsent(fileName, new Tombstone(allServers()));
+                } else if (line.charAt(0) == '-') {
+                    tombstones.remove(fileName);
+                }
+            }
+        }
+
+        boolean isRemoved(String fileName) {
+            return tombstones.containsKey(fileName);
+        }
+
+        void remove(String fileName) {
+            synchronized (journalLock) {
+                if (tombstones.putIfAbsent(fileName, new Tombstone(allServers())) == null) {
+                    log('+', fileName);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Annule une suppression en attente avant de réécrire le fichier, en attendant
+         * la fin d'un lot en cours qui viserait ses parties.
+         */
+        void beginUpload(String fileName) {
+            uploading.add(fileName);
+            Tombstone tombstone;
+            synchronized (journalLock) {
+                tombstone = tombstones.remove(fileName);
+                if (tombstone != null) {
+                    log('-', fileName);
+                }
+            }
+            if (tombstone != null) {
+                tombstone.lock.writeLock().lock();
+                try {
+                    tombstone.cancelled = true;
+                } finally {
+                    tombstone.lock.writeLock().unlock();
+                }
+            }
+        }
+
+        void endUpload(String fileName) {
+            uploading.remove(fileName);
+        }
+
+        private void schedule() {
+            if (pending.compareAndSet(false, true)) {
+                scheduler.execute(this::collect);
+            }
+        }
+
+        /**
+         * Passage planifié : seul ce passage compte pour le balayage, afin qu'une rafale
+         * de REMOVE ne déclenche pas d'inventaires supplémentaires.
+         */
+        private void tick() {
+            collect();
+            if (sweepEvery > 0 && ++ticks % sweepEvery == 0) {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    System.err.println("Erreur du ramasse-miettes : " + e.getMessage());
+                }
+            }
+        }
+
+        private void collect() {
+            pending.set(false);
+            try {
+                deletePending();
+            } catch (RuntimeException e) {
+                System.err.println("Erreur du ramasse-miettes : " + e.getMessage());
+            }
+        }
+
+        private void deletePending() {
+            if (tombstones.isEmpty()) {
+                return;
+            }
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < subServers.size(); i++) {
+                List<String> batch = new ArrayList<>();
+                for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+                    if (entry.getValue().servers.contains(i)) {
+                        batch.add(entry.getKey());
+                    }
+                    if (batch.size() == batchSize) {
+                        futures.add(submitBatch(i, batch));
+                        batch = new ArrayList<>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    futures.add(submitBatch(i, batch));
+                }
+            }
+            await(futures);
+
+            boolean changed = false;
+            for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+                if (!entry.getValue().servers.isEmpty()) {
+                    continue;
+                }
+                // Verrou pris par nom : un REMOVE n'attend jamais la fin du parcours
+                synchronized (journalLock) {
+                    if (tombstones.remove(entry.getKey(), entry.getValue())) {
+                        log('-', entry.getKey());
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                compact();
+            }
+        }
+
+        private Future<?> submitBatch(int serverIndex, List<String> fileNames) {
+            return workers.submit(() -> {
+                List<Tombstone> locked = new ArrayList<>();
+                Map<String, FileLock> fileLocked = new HashMap<>();
+                List<String> targets = new ArrayList<>();
+                List<String> partNames = new ArrayList<>();
+                try {
+                    for (String fileName : fileNames) {
+                        Tombstone tombstone = tombstones.get(fileName);
+                        if (tombstone == null) {
+                            continue;
+                        }
+                        // Fichier en cours d'écriture : réessayé au prochain passage
+                        FileLock fileLock = tryReadLockFile(fileName);
+                        if (fileLock == null) {
+                            continue;
+                        }
+                        fileLocked.put(fileName, fileLock);
+                        tombstone.lock.readLock().lock();
+                        locked.add(tombstone);
+                        if (!tombstone.cancelled) {
+                            targets.add(fileName);
+                            partNames.add(fileName + ".part" + (serverIndex + 1));
+                        }
+                    }
+
+                    boolean[] deleted = removeBatch(subServers.get(serverIndex), partNames);
+                    for (int i = 0; i < deleted.length; i++) {
+                        Tombstone tombstone = tombstones.get(targets.get(i));
+                        if (deleted[i] && tombstone != null) {
+                            tombstone.servers.remove(serverIndex);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Sous-serveur " + (serverIndex + 1) + " injoignable, suppression reportée : " + e.getMessage());
+                } finally {
+                    for (Tombstone tombstone : locked) {
+                        tombstone.lock.readLock().unlock();
+                    }
+                    for (Map.Entry<String, FileLock> entry : fileLocked.entrySet()) {
+                        unlockFile(entry.getKey(), entry.getValue());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Compare les inventaires des sous-serveurs. Une partie rangée sur le mauvais
+         * sous-serveur à chaque balayage pendant au moins gc.incomplete.grace secondes
+         * est supprimée, sauf si la plupart des parties de ce sous-serveur sont mal
+         * rangées (configuration inversée, répertoire partagé). Un fichier auquel il
+         * manque des parties pendant le même délai (hors upload en cours) reçoit une
+         * pierre tombale. 0 désactive les deux cas.
+         */
+        private void sweep() {
+            List<List<String>> inventories = new ArrayList<>();
+            for (SubServerInfo subServer : subServers) {
+                try {
+                    inventories.add(listSubServer(subServer));
+                } catch (IOException e) {
+                    // Un inventaire incomplet ferait passer tous les fichiers pour orphelins
+                    System.err.println("Balayage des orphelins annulé : " + e.getMessage());
+                    return;
+                }
+            }
+
+            if (incompleteGraceMillis <= 0) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            Map<String, Set<Integer>> locations = new HashMap<>();
+            Map<String, Long> stillMisplaced = new HashMap<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < inventories.size(); i++) {
+                List<String> misplaced = new ArrayList<>();
+                int parts = 0;
+                for (String partName : inventories.get(i)) {
+                    Matcher matcher = PART_NAME.matcher(partName);
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    parts++;
+                    if (!matcher.group(2).equals(String.valueOf(i + 1))) {
+                        misplaced.add(partName);
+                    } else {
+                        locations.computeIfAbsent(matcher.group(1), k -> new HashSet<>()).add(i);
+                    }
+                }
+                if (misplaced.isEmpty()) {
+                    continue;
+                }
+                if (misplaced.size() * 2 > parts) {
+                    System.err.println("Sous-serveur " + (i + 1) + " : " + misplaced.size() + "/" + parts
+                            + " parties mal rangées, configuration à vérifier, nettoyage ignoré");
+                    continue;
+                }
+
+                List<String> expired = new ArrayList<>();
+                for (String partName : misplaced) {
+                    String key = i + "/" + partName;
+                    long since = misplacedSince.getOrDefault(key, now);
+                    if (now - since >= incompleteGraceMillis) {
+                        expired.add(partName);
+                    } else {
+                        stillMisplaced.put(key, since);
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    SubServerInfo subServer = subServers.get(i);
+                    futures.add(workers.submit(() -> {
+                        try {
+                            removeBatch(subServer, expired);
+                            System.out.println("Parties orphelines supprimées : " + expired);
+                        } catch (IOException e) {
+                            System.err.println("Erreur lors de la suppression des orphelins : " + e.getMessage());
+                        }
+                    }));
+                }
+            }
+            misplacedSince = stillMisplaced;
+            await(futures);
+
+            for (int i = 0; i < subServers.size(); i++) {
+                final int serverIndex = i;
+                boolean empty = locations.values().stream().noneMatch(servers -> servers.contains(serverIndex));
+                if (empty && !locations.isEmpty()) {
+                    // Un répertoire vide (remontage, répertoire recréé) ferait passer tous les fichiers pour incomplets
+                    System.err.println("Sous-serveur " + (i + 1) + " sans aucune partie, fichiers incomplets ignorés");
+                    return;
+                }
+            }
+
+            Map<String, Long> stillIncomplete = new HashMap<>();
+            boolean changed = false;
+            for (Map.Entry<String, Set<Integer>> entry : locations.entrySet()) {
+                String fileName = entry.getKey();
+                if (entry.getValue().size() == subServers.size() || uploading.contains(fileName)
+                        || tombstones.containsKey(fileName)) {
+                    continue;
+                }
+                long since = incompleteSince.getOrDefault(fileName, now);
+                if (now - since >= incompleteGraceMillis) {
+                    synchronized (journalLock) {
+                        if (tombstones.putIfAbsent(fileName, new Tombstone(entry.getValue())) == null) {
+                            log('+', fileName);
+                        }
+                    }
+                    fileCache.invalidate(fileName);
+                    System.out.println("Fichier incomplet marqué pour suppression : " + fileName);
+                    changed = true;
+                } else {
+                    stillIncomplete.put(fileName, since);
+                }
+            }
+            incompleteSince = stillIncomplete;
+            if (changed) {
+                schedule();
+            }
+        }
+
+        private boolean[] removeBatch(SubServerInfo subServer, List<String> partNames) throws IOException {
+            boolean[] deleted = new boolean[partNames.size()];
+            if (partNames.isEmpty()) {
+                return deleted;
+            }
+            try (Socket subServerSocket = new Socket(subServer.getHost(), subServer.getPort())) {
+                DataInputStream subIn = new DataInputStream(subServerSocket.getInputStream());
+                DataOutputStream subOut = new DataOutputStream(new BufferedOutputStream(subServerSocket.getOutputStream()));
+
+                subOut.writeUTF("REMOVE_BATCH");
+                subOut.writeInt(partNames.size());
+                for (String partName : partNames) {
+                    subOut.writeUTF(partName);
+                }
+                subOut.flush();
+
+                for (int i = 0; i < deleted.length; i++) {
+                    deleted[i] = subIn.readBoolean();
+                }
+            }
+            return deleted;
+        }
+
+        private void await(List<Future<?>> futures) {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    System.err.println("Erreur du ramasse-miettes : " + e.getCause().getMessage());
+                }
+            }
+        }
+
+        private Set<Integer> allServers() {
+            Set<Integer> servers = new HashSet<>();
+            for (int i = 0; i < subServers.size(); i++) {
+                servers.add(i);
+            }
+            return servers;
+        }
+
+        /**
+         * Ajoute une ligne au journal ; appelé sous journalLock avec la modification de
+         * tombstones qu'elle décrit, pour que l'ordre du journal soit celui des modifications.
+         */
+        private void log(char operation, String fileName) {
+            if (journal == null) {
+                return;
+            }
+            try {
+                journal.write(operation + "\t" + fileName + "\n");
+                journal.flush();
+            } catch (IOException e) {
+                System.err.println("Erreur d'écriture des suppressions en attente : " + e.getMessage());
+            }
+        }
+
+        private Writer openJournal() throws IOException {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Réécrit gc.tombstone.file et vide le journal, depuis le thread du ramasse-miettes.
+         * Le journal est d'abord mis de côté et remplacé par un neuf, si bien que les
+         * REMOVE n'attendent pas la réécriture. Chaque ligne du journal fixe l'état final
+         * de son nom : rejouer au démarrage un journal déjà compris dans l'état écrit
+         * (arrêt avant la suppression de l'ancien journal) ne change rien.
+         */
+        private void compact() {
+            try {
+                // Un ancien journal resté d'un échec précédent est couvert par l'état réécrit ci-dessous
+                if (!oldJournalFile.exists() && journal != null) {
+                    synchronized (journalLock) {
+                        try {
+                            journal.close();
+                            Files.move(journalFile.toPath(), oldJournalFile.toPath());
+                        } finally {
+                            journal = openJournal();
+                        }
+                    }
+                }
+                if (writeSnapshot()) {
+                    Files.deleteIfExists(oldJournalFile.toPath());
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur d'écriture des suppressions en attente : " + e.getMessage());
+            }
+        }
+
+        private boolean writeSnapshot() {
+            try {
+                File tempFile = new File(tombstoneFile.getPath() + ".tmp");
+                Files.write(tempFile.toPath(), new ArrayList<>(tombstones.keySet()), StandardCharsets.UTF_8);
+                Files.move(tempFile.toPath(), tombstoneFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Erreur d'écriture des suppressions en attente : " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    private static class FileLock {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users;
+    }
+
+    /**
+     * Fichier supprimé dont des parties restent à effacer sur les sous-serveurs listés.
+     */
+    private static class Tombstone {
+        final Set<Integer> servers = ConcurrentHashMap.newKeySet();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile boolean cancelled;
+
+        Tombstone(Set<Integer> servers) {
+            this.servers.addAll(servers);
         }
     }
 
@@ -1,15 +1,21 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 public class SubServer {
     private int port;
     private String storageDirectory;
     private Properties config;
+    private int serverNumber;
+    private TransferScheduler transferScheduler;
     private static final int CHUNK_SIZE = 1024 * 1024; 
 
     public SubServer(int serverNumber) {
+        this.serverNumber = serverNumber;
         loadConfiguration(serverNumber);
+        this.transferScheduler = new TransferScheduler(config);
         createStorageDirectory();
     }
 
@@ -94,6 +100,18 @@ public class SubServer {
                     case "REMOVE":
                         handleRemove();
                         break;
+                    case "REMOVE_BATCH":
+                        handleRemoveBatch();
+                        break;
+                    case "SIGNATURES":
+                        handleSignatures();
+                        break;
+                    case "READ":
+                        handleRead();
+                        break;
+                    case "REBUILD":
+                        handleRebuild();
+                        break;
                     default:
                         System.err.println("Opération inconnue : " + operation);
                 }
@@ -120,18 +138,134 @@ public class SubServer {
             try (FileOutputStream fos = new FileOutputStream(file);
                  BufferedOutputStream bos = new BufferedOutputStream(fos)) {
 
+                TransferScheduler.Throttle throttle = transferScheduler.forSubServer(serverNumber, fileSize);
                 byte[] buffer = new byte[CHUNK_SIZE];
                 long remaining = fileSize;
                 while (remaining > 0) {
                     int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
                     if (read == -1) break;
+                    throttle.acquire(read);
                     bos.write(buffer, 0, read);
                     remaining -= read;
                 }
             }
+            out.writeBoolean(true);
             System.out.println("Fichier reçu : " + fileName);
         }
 
+        /**
+         * Annonce la longueur de la partie (-1 si absente), attend la taille de bloc
+         * choisie par le serveur principal pour le fichier entier (0 pour abandonner),
+         * puis envoie la signature de chaque bloc complet de la partie.
+         */
+        private void handleSignatures() throws IOException {
+            String fileName = in.readUTF();
+            File file = new File(storageDirectory + File.separator + fileName);
+
+            out.writeLong(file.isFile() ? file.length() : -1);
+            int blockSize = in.readInt();
+            if (blockSize <= 0 || !file.isFile()) {
+                return;
+            }
+
+            DataOutputStream signatureOut = new DataOutputStream(new BufferedOutputStream(out));
+            int count = DeltaSync.writeBlockSignatures(file, blockSize, signatureOut);
+            signatureOut.flush();
+            System.out.println("Signatures envoyées : " + fileName + " (" + count + " blocs)");
+        }
+
+        /**
+         * Envoie des plages d'une partie (offset, longueur) jusqu'à un offset de -1.
+         * Sert au serveur principal quand un bloc a changé de partie.
+         */
+        private void handleRead() throws IOException {
+            String fileName = in.readUTF();
+            File file = new File(storageDirectory + File.separator + fileName);
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                TransferScheduler.Throttle throttle = transferScheduler.forSubServer(serverNumber, raf.length());
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long offset;
+                while ((offset = in.readLong()) != -1) {
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || length > buffer.length || offset + length > raf.length()) {
+                        throw new IOException("Plage invalide dans " + fileName + " : " + offset + "+" + length);
+                    }
+                    raf.seek(offset);
+                    raf.readFully(buffer, 0, length);
+                    throttle.acquire(length);
+                    out.write(buffer, 0, length);
+                }
+            }
+        }
+
+        /**
+         * Écrit la nouvelle version d'une partie dans un fichier temporaire à partir
+         * d'instructions COPY (offset et longueur dans l'ancienne partie), DATA et END,
+         * répond si la longueur obtenue est la bonne, puis remplace l'ancienne partie
+         * seulement si le serveur principal confirme. Sans confirmation, l'ancienne
+         * partie reste en place.
+         */
+        private void handleRebuild() throws IOException {
+            String fileName = in.readUTF();
+            long newLength = in.readLong();
+            File file = new File(storageDirectory + File.separator + fileName);
+            File syncDirectory = new File(storageDirectory, ".sync");
+            syncDirectory.mkdirs();
+            File temp = File.createTempFile("rebuild", ".tmp", syncDirectory);
+
+            DataInputStream ops = new DataInputStream(new BufferedInputStream(in));
+            try {
+                long copied = 0;
+                long received = 0;
+                try (RandomAccessFile old = file.isFile() ? new RandomAccessFile(file, "r") : null;
+                     OutputStream output = new BufferedOutputStream(new FileOutputStream(temp))) {
+                    TransferScheduler.Throttle throttle = transferScheduler.forSubServer(serverNumber, newLength);
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    byte op;
+                    while ((op = ops.readByte()) != DeltaSync.END) {
+                        if (op == DeltaSync.COPY) {
+                            long offset = ops.readLong();
+                            int length = ops.readInt();
+                            if (old == null || offset < 0 || length < 0 || length > buffer.length
+                                    || offset + length > old.length()) {
+                                throw new IOException("Plage invalide dans " + fileName + " : " + offset + "+" + length);
+                            }
+                            old.seek(offset);
+                            old.readFully(buffer, 0, length);
+                            output.write(buffer, 0, length);
+                            copied += length;
+                        } else if (op == DeltaSync.DATA) {
+                            int length = ops.readInt();
+                            if (length < 0 || length > buffer.length) {
+                                throw new IOException("Longueur de données invalide : " + length);
+                            }
+                            ops.readFully(buffer, 0, length);
+                            throttle.acquire(length);
+                            output.write(buffer, 0, length);
+                            received += length;
+                        } else {
+                            throw new IOException("Instruction inconnue : " + op);
+                        }
+                    }
+                }
+
+                boolean complete = temp.length() == newLength;
+                out.writeBoolean(complete);
+                if (!complete || !ops.readBoolean()) {
+                    System.err.println("Reconstruction abandonnée : " + fileName);
+                    return;
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                out.writeBoolean(true);
+                System.out.println("Fichier reconstruit : " + fileName + " (" + copied + " octets recopiés, "
+                        + received + " reçus)");
+            } finally {
+                temp.delete();
+            }
+        }
+
         private void handleDownload() throws IOException {
             String fileName = in.readUTF();
             File file = new File(storageDirectory + File.separator + fileName);
@@ -147,9 +281,11 @@ public class SubServer {
             try (FileInputStream fis = new FileInputStream(file);
                  BufferedInputStream bis = new BufferedInputStream(fis)) {
 
+                TransferScheduler.Throttle throttle = transferScheduler.forSubServer(serverNumber, file.length());
                 byte[] buffer = new byte[CHUNK_SIZE];
                 int bytesRead;
                 while ((bytesRead = bis.read(buffer)) != -1) {
+                    throttle.acquire(bytesRead);
                     out.write(buffer, 0, bytesRead);
                 }
             }
@@ -194,6 +330,27 @@ public class SubServer {
                 System.err.println("Échec de la suppression du fichier : " + fileName);
             }
         }
+
+        private void handleRemoveBatch() throws IOException {
+            int count = in.readInt();
+            List<String> fileNames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                fileNames.add(in.readUTF());
+            }
+
+            // Un fichier déjà absent compte comme supprimé : le serveur principal peut réessayer sans risque
+            int deleted = 0;
+            for (String fileName : fileNames) {
+                File file = new File(storageDirectory + File.separator + fileName);
+                boolean success = !file.exists() || file.delete();
+                out.writeBoolean(success);
+                if (success) {
+                    deleted++;
+                }
+            }
+            out.flush();
+            System.out.println("Lot de suppression traité : " + deleted + "/" + fileNames.size() + " fichiers");
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limitation de débit des transferts par seaux à jetons (global, par client,
+ * par sous-serveur) avec deux classes de priorité. Un transfert dont la taille ne
+ * dépasse pas qos.interactive.max.size est interactif : dans chaque seau, il passe
+ * avant les transferts volumineux, qui attendent tant qu'un transfert interactif
+ * est en attente. Un débit à 0 désactive la limite correspondante.
+ */
+public class TransferScheduler {
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long IDLE_BUCKET_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final long globalRate;
+    private final long clientRate;
+    private final long subServerRate;
+    private final long interactiveMaxSize;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastPurge = new AtomicLong(System.nanoTime());
+
+    public TransferScheduler(Properties config) {
+        this.globalRate = Long.parseLong(config.getProperty("qos.rate.global", "0"));
+        this.clientRate = Long.parseLong(config.getProperty("qos.rate.client", "0"));
+        this.subServerRate = Long.parseLong(config.getProperty("qos.rate.subserver", "0"));
+        this.interactiveMaxSize = Long.parseLong(config.getProperty("qos.interactive.max.size", "1048576"));
+    }
+
+    /**
+     * Transfert entre un client et le serveur principal : seau global et seau du client.
+     */
+    public Throttle forClient(String client, long size) {
+        purgeIdleClients();
+        return new Throttle(isInteractive(size),
+                bucket("global", globalRate),
+                bucket("client:" + client, clientRate));
+    }
+
+    /**
+     * Transfert vers ou depuis un sous-serveur, numéroté à partir de 1.
+     */
+    public Throttle forSubServer(int serverNumber, long size) {
+        return new Throttle(isInteractive(size), bucket("subserver:" + serverNumber, subServerRate));
+    }
+
+    private boolean isInteractive(long size) {
+        return size >= 0 && size <= interactiveMaxSize;
+    }
+
+    private TokenBucket bucket(String name, long rate) {
+        if (rate <= 0) {
+            return null;
+        }
+        return buckets.computeIfAbsent(name, k -> new TokenBucket(rate));
+    }
+
+    /**
+     * Oublie les seaux des clients inactifs depuis plusieurs minutes (au plus un
+     * parcours par période) pour que la table ne grossisse pas avec chaque adresse.
+     */
+    private void purgeIdleClients() {
+        long now = System.nanoTime();
+        long last = lastPurge.get();
+        if (now - last < IDLE_BUCKET_NANOS || !lastPurge.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.entrySet().removeIf(entry -> entry.getKey().startsWith("client:") && entry.getValue().isIdle(now));
+    }
+
+    /**
+     * Droit de passage d'un transfert, à appeler dans la boucle de copie avant chaque écriture.
+     */
+    public static class Throttle {
+        private final boolean interactive;
+        private final List<TokenBucket> buckets = new ArrayList<>();
+
+        private Throttle(boolean interactive, TokenBucket... buckets) {
+            this.interactive = interactive;
+            for (TokenBucket bucket : buckets) {
+                if (bucket != null) {
+                    this.buckets.add(bucket);
+                }
+            }
+        }
+
+        /**
+         * Les jetons sont pris par tranches d'au plus une rafale : un transfert prioritaire
+         * arrivé entre-temps passe entre deux tranches d'un gros bloc.
+         */
+        public void acquire(int bytes) throws IOException {
+            try {
+                for (TokenBucket bucket : buckets) {
+                    long remaining = bytes;
+                    while (remaining > 0) {
+                        long slice = Math.min(remaining, bucket.capacity);
+                        bucket.acquire(slice, interactive);
+                        remaining -= slice;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfert interrompu");
+            }
+        }
+    }
+
+    private static class TokenBucket {
+        private final long rate;
+        private final long capacity;
+        private double tokens;
+        private long lastRefill;
+        private int interactiveWaiting;
+        private int waiting;
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.capacity = Math.max(rate / 10, MIN_BURST);
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Prend bytes jetons (au plus capacity), les transferts interactifs en attente d'abord.
+         */
+        synchronized void acquire(long bytes, boolean interactive) throws InterruptedException {
+            waiting++;
+            if (interactive) {
+                interactiveWaiting++;
+            }
+            try {
+                while (true) {
+                    refill();
+                    boolean turn = interactive || interactiveWaiting == 0;
+                    if (turn && tokens >= bytes) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    waitFor(bytes - tokens);
+                }
+            } finally {
+                waiting--;
+                if (interactive) {
+                    interactiveWaiting--;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized boolean isIdle(long now) {
+            return waiting == 0 && now - lastRefill > IDLE_BUCKET_NANOS;
+        }
+
+        private void waitFor(double missing) throws InterruptedException {
+            wait(Math.max(1, (long) (Math.max(missing, 1) * 1000 / rate)));
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+    }
+}